@@ -2,6 +2,7 @@ package neo4j.path.util;
 
 import neo4j.result.NodeResult;
 import neo4j.result.PathResult;
+import neo4j.result.ProfileResult;
 import neo4j.util.Util;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
@@ -30,13 +31,13 @@ public class DenseNodeFinder {
     public Log log;
 
     @Procedure("expandTo.denseNodes.paths")
-    @Description("expandTo.denseNodes.paths(startNode <id>|Node|list, {minLevel, maxLevel, relationshipFilter, labelFilter, uniqueness:'RELATIONSHIP_PATH', bfs:true, filterStartNode:false, optional:false, density:1000, denseRels}) yield path expand paths from start node to dense nodes (with denseRels of the given density or higher) following the given relationships from min to max-level adhering to the label filters")
+    @Description("expandTo.denseNodes.paths(startNode <id>|Node|list, {minLevel, maxLevel, relationshipFilter, labelFilter, uniqueness:'RELATIONSHIP_PATH', bfs:true, filterStartNode:false, optional:false, density:1000, denseRels, maxExpandPerNode}) yield path expand paths from start node to dense nodes (with denseRels of the given density or higher) following the given relationships from min to max-level adhering to the label filters")
     public Stream<PathResult> denseNodesPaths(@Name("start") Object start, @Name("config") Map<String,Object> config) throws Exception {
         return expandConfigPrivate(start, config).map( PathResult::new );
     }
 
     @Procedure("expandTo.denseNodes.nodes")
-    @Description("expandTo.denseNodes.nodes(startNode <id>|Node|list, {maxLevel, relationshipFilter, labelFilter, bfs:true, filterStartNode:false, optional:false, density:1000, denseRels}) yield node expand to dense nodes (with denseRels of the given density or higher) reachable from start node following relationships to max-level adhering to the label filters")
+    @Description("expandTo.denseNodes.nodes(startNode <id>|Node|list, {maxLevel, relationshipFilter, labelFilter, bfs:true, filterStartNode:false, optional:false, density:1000, denseRels, maxExpandPerNode}) yield node expand to dense nodes (with denseRels of the given density or higher) reachable from start node following relationships to max-level adhering to the label filters")
     public Stream<NodeResult> denseNodes(@Name("start") Object start, @Name("config") Map<String,Object> config) throws Exception {
         Map<String, Object> configMap = new HashMap<>(config);
         configMap.remove("minLevel");
@@ -46,7 +47,7 @@ public class DenseNodeFinder {
     }
 
     @Procedure("expandTo.denseNodes.singlePath")
-    @Description("expandTo.denseNodes.singlePath(startNode <id>|Node|list, {maxLevel, relationshipFilter, labelFilter, bfs:true, filterStartNode:false, optional:false, density:1000, denseRels}) yield path expand a single path to each dense nodes (with denseRels of the given density or higher) from start node following relationships to max-level adhering to the label filters")
+    @Description("expandTo.denseNodes.singlePath(startNode <id>|Node|list, {maxLevel, relationshipFilter, labelFilter, bfs:true, filterStartNode:false, optional:false, density:1000, denseRels, maxExpandPerNode}) yield path expand a single path to each dense nodes (with denseRels of the given density or higher) from start node following relationships to max-level adhering to the label filters")
     public Stream<PathResult> denseNodesSinglePath(@Name("start") Object start, @Name("config") Map<String,Object> config) throws Exception {
         Map<String, Object> configMap = new HashMap<>(config);
         configMap.remove("minLevel");
@@ -55,6 +56,26 @@ public class DenseNodeFinder {
         return expandConfigPrivate(start, configMap).map( PathResult::new );
     }
 
+    @Procedure("expandTo.denseNodes.profile")
+    @Description("expandTo.denseNodes.profile(startNode <id>|Node|list, {maxLevel:10, relationshipFilter, labelFilter, filterStartNode:false, denseRels, degree:1000, continueBelow:0, maxExpandPerNode:-1, sampleSize:1000, samplePerNode:100}) yield depth, sampledNodes, estimatedFrontier, estimatedDenseNodes, degreeHistogram estimate per-depth frontier sizes, dense node counts and denseRels degree histograms with a bounded sampled expansion, to choose maxLevel and degree before running the full expansion")
+    public Stream<ProfileResult> denseNodesProfile(@Name("start") Object start, @Name("config") Map<String,Object> config) throws Exception {
+        List<Node> nodes = startToNodes(start);
+
+        String relationshipFilter = (String) config.getOrDefault("relationshipFilter", null);
+        String labelFilter = (String) config.getOrDefault("labelFilter", null);
+        long maxLevel = Util.toLong(config.getOrDefault("maxLevel", "-1"));
+        boolean filterStartNode = Util.toBoolean(config.getOrDefault("filterStartNode", false));
+        long degree = Util.toLong(config.getOrDefault("degree", "1000"));
+        long continueBelow = Util.toLong(config.getOrDefault("continueBelow", 0));
+        String denseRelPattern = (String) config.getOrDefault("denseRels", "");
+        long sampleSize = Util.toLong(config.getOrDefault("sampleSize", ExpansionProfiler.DEFAULT_SAMPLE_SIZE));
+        long samplePerNode = Util.toLong(config.getOrDefault("samplePerNode", ExpansionProfiler.DEFAULT_SAMPLE_PER_NODE));
+        long maxExpandPerNode = Util.toLong(config.getOrDefault("maxExpandPerNode", "-1"));
+
+        ExpansionProfiler profiler = new ExpansionProfiler(db, relationshipFilter, labelFilter, filterStartNode, denseRelPattern, degree, continueBelow, maxExpandPerNode, sampleSize, samplePerNode);
+        return profiler.profile(nodes, maxLevel).stream();
+    }
+
     private Uniqueness getUniqueness(String uniqueness) {
         for (Uniqueness u : Uniqueness.values()) {
             if (u.name().equalsIgnoreCase(uniqueness)) return u;
@@ -107,8 +128,9 @@ public class DenseNodeFinder {
         long degree = Util.toLong(config.getOrDefault("degree", "1000"));
         long continueBelow = Util.toLong(config.getOrDefault("continueBelow", 0));
         String denseRelPattern = (String) config.getOrDefault("denseRels", "");
+        long maxExpandPerNode = Util.toLong(config.getOrDefault("maxExpandPerNode", "-1"));
 
-        Stream<Path> results = explorePathPrivate(nodes, relationshipFilter, labelFilter, minLevel, maxLevel, bfs, getUniqueness(uniqueness), filterStartNode, limit, denseRelPattern, degree, continueBelow);
+        Stream<Path> results = explorePathPrivate(nodes, relationshipFilter, labelFilter, minLevel, maxLevel, bfs, getUniqueness(uniqueness), filterStartNode, limit, denseRelPattern, degree, continueBelow, maxExpandPerNode);
 
         if (optional) {
             return optionalStream(results);
@@ -121,12 +143,12 @@ public class DenseNodeFinder {
             , String pathFilter
             , String labelFilter
             , long minLevel
-            , long maxLevel, boolean bfs, Uniqueness uniqueness, boolean filterStartNode, long limit, String denseRelPattern, long degree, long continueBelow) {
+            , long maxLevel, boolean bfs, Uniqueness uniqueness, boolean filterStartNode, long limit, String denseRelPattern, long degree, long continueBelow, long maxExpandPerNode) {
         // LabelFilter
         // -|Label|:Label|:Label excluded label list
         // +:Label or :Label include labels
 
-        Traverser traverser = traverse(db.traversalDescription(), startNodes, pathFilter, labelFilter, minLevel, maxLevel, uniqueness,bfs,filterStartNode,limit,denseRelPattern, degree, continueBelow);
+        Traverser traverser = traverse(db.traversalDescription(), startNodes, pathFilter, labelFilter, minLevel, maxLevel, uniqueness,bfs,filterStartNode,limit,denseRelPattern, degree, continueBelow, maxExpandPerNode);
         return traverser.stream();
     }
 
@@ -150,6 +172,10 @@ public class DenseNodeFinder {
     }
 
     public static Traverser traverse(TraversalDescription traversalDescription, Iterable<Node> startNodes, String pathFilter, String labelFilter, long minLevel, long maxLevel, Uniqueness uniqueness, boolean bfs, boolean filterStartNode, long limit, String denseRelPattern, long degree, long continueBelow) {
+        return traverse(traversalDescription, startNodes, pathFilter, labelFilter, minLevel, maxLevel, uniqueness, bfs, filterStartNode, limit, denseRelPattern, degree, continueBelow, -1);
+    }
+
+    public static Traverser traverse(TraversalDescription traversalDescription, Iterable<Node> startNodes, String pathFilter, String labelFilter, long minLevel, long maxLevel, Uniqueness uniqueness, boolean bfs, boolean filterStartNode, long limit, String denseRelPattern, long degree, long continueBelow, long maxExpandPerNode) {
         TraversalDescription td = traversalDescription;
         // based on the pathFilter definition now the possible relationships and directions must be shown
 
@@ -157,13 +183,7 @@ public class DenseNodeFinder {
 
         Iterable<Pair<RelationshipType, Direction>> relDirIterable = neo4j.util.RelTypeAndDirection.parse(pathFilter);
 
-        for (Pair<RelationshipType, Direction> pair: relDirIterable) {
-            if (pair.first() == null) {
-                td = td.expand(PathExpanderBuilder.allTypes(pair.other()).build());
-            } else {
-                td = td.relationships(pair.first(), pair.other());
-            }
-        }
+        td = td.expand(new DenseNodeExpander(relDirIterable, maxExpandPerNode));
 
         if (minLevel != -1) td = td.evaluator(Evaluators.fromDepth((int) minLevel));
         if (maxLevel != -1) td = td.evaluator(Evaluators.toDepth((int) maxLevel));
@@ -179,6 +199,226 @@ public class DenseNodeFinder {
         return td.traverse(startNodes);
     }
 
+    /**
+     * Expands only the relationship type/direction groups of the relationshipFilter, so continuing through a dense node
+     * reads the matching relationship chains instead of filtering every relationship of the node.
+     * If maxExpandPerNode is positive, nodes with more matching relationships than that expand only a deterministic sample,
+     * the first relationships of each group, allotted in proportion to the group degrees.
+     * Overlapping filters are merged so each relationship is expanded once, self-loops included.
+     */
+    public static class DenseNodeExpander implements PathExpander<Object> {
+        private final List<Pair<RelationshipType, Direction>> relDirs;
+        private final boolean hasAllTypes;
+        private final long maxExpandPerNode;
+
+        public DenseNodeExpander(Iterable<Pair<RelationshipType, Direction>> relDirs, long maxExpandPerNode) {
+            this.relDirs = normalize(relDirs);
+            this.hasAllTypes = this.relDirs.stream().anyMatch(pair -> pair.first() == null);
+            this.maxExpandPerNode = maxExpandPerNode;
+        }
+
+        @Override
+        public Iterable<Relationship> expand(Path path, BranchState<Object> state) {
+            // uniqueness rejects the relationship the path arrived by, so it shouldn't use up maxExpandPerNode
+            return expand(path.endNode(), path.lastRelationship());
+        }
+
+        public Iterable<Relationship> expand(Node node) {
+            return expand(node, null);
+        }
+
+        /**
+         * Expands the node without the excluded relationship, e.g. the one it was reached by, which isn't counted toward maxExpandPerNode.
+         */
+        public Iterable<Relationship> expand(Node node, Relationship excluded) {
+            int excludedGroup = groupOf(node, excluded);
+            List<Iterable<Relationship>> groups = new ArrayList<>(relDirs.size());
+            for (int i = 0; i < relDirs.size(); i++) {
+                Pair<RelationshipType, Direction> pair = relDirs.get(i);
+                Iterable<Relationship> rels = pair.first() == null ? node.getRelationships(pair.other()) : node.getRelationships(pair.first(), pair.other());
+                // a typed group beside an all-types group was narrowed to the other direction, but its loops are in both
+                boolean skipLoops = pair.first() != null && hasAllTypes;
+                if (skipLoops || i == excludedGroup) {
+                    rels = filter(rels, node.getId(), skipLoops, i == excludedGroup ? excluded.getId() : -1);
+                }
+                groups.add(rels);
+            }
+
+            if (maxExpandPerNode < 1) {
+                return concat(groups);
+            }
+
+            long[] degrees = new long[relDirs.size()];
+            long total = 0;
+            for (int i = 0; i < degrees.length; i++) {
+                degrees[i] = degree(node, relDirs.get(i)) - (i == excludedGroup ? 1 : 0);
+                total += degrees[i];
+            }
+
+            if (total <= maxExpandPerNode) {
+                return concat(groups);
+            }
+
+            long[] allocation = new long[degrees.length];
+            long allocated = 0;
+            for (int i = 0; i < degrees.length; i++) {
+                allocation[i] = maxExpandPerNode * degrees[i] / total;
+                allocated += allocation[i];
+            }
+            for (int i = 0; allocated < maxExpandPerNode; i = (i + 1) % degrees.length) {
+                if (allocation[i] < degrees[i]) {
+                    allocation[i]++;
+                    allocated++;
+                }
+            }
+
+            List<Relationship> sample = new ArrayList<>((int) maxExpandPerNode);
+            for (int i = 0; i < degrees.length; i++) {
+                Iterator<Relationship> rels = groups.get(i).iterator();
+                for (long taken = 0; taken < allocation[i] && rels.hasNext(); taken++) {
+                    sample.add(rels.next());
+                }
+            }
+            return sample;
+        }
+
+        /**
+         * @return the number of relationships expand(node, excluded) returns, read from the degree counts
+         */
+        public long degree(Node node, Relationship excluded) {
+            long total = groupOf(node, excluded) == -1 ? 0 : -1;
+            for (Pair<RelationshipType, Direction> pair : relDirs) {
+                total += degree(node, pair);
+            }
+            return maxExpandPerNode < 1 ? total : Math.min(total, maxExpandPerNode);
+        }
+
+        // index of the group of the node that returns the relationship, or -1 if none does
+        private int groupOf(Node node, Relationship rel) {
+            if (rel == null) {
+                return -1;
+            }
+
+            long nodeId = node.getId();
+            boolean loop = rel.getOtherNodeId(nodeId) == nodeId;
+            for (int i = 0; i < relDirs.size(); i++) {
+                Pair<RelationshipType, Direction> pair = relDirs.get(i);
+                if (pair.first() != null && (!rel.isType(pair.first()) || hasAllTypes && loop)) {
+                    continue;
+                }
+
+                Direction direction = pair.other();
+                if (loop || direction == Direction.BOTH
+                        || direction == Direction.OUTGOING && rel.getStartNode().getId() == nodeId
+                        || direction == Direction.INCOMING && rel.getEndNode().getId() == nodeId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // degrees come from the relationship group counts for dense nodes, without reading the chains
+        private long degree(Node node, Pair<RelationshipType, Direction> pair) {
+            if (pair.first() == null) {
+                return node.getDegree(pair.other());
+            }
+            if (hasAllTypes) {
+                // BOTH counts a loop once and each single direction counts it too, so this leaves only the non-loop relationships
+                return node.getDegree(pair.first(), Direction.BOTH) - node.getDegree(pair.first(), pair.other().reverse());
+            }
+            return node.getDegree(pair.first(), pair.other());
+        }
+
+        @Override
+        public PathExpander<Object> reverse() {
+            List<Pair<RelationshipType, Direction>> reversed = new ArrayList<>(relDirs.size());
+            for (Pair<RelationshipType, Direction> pair : relDirs) {
+                reversed.add(Pair.of(pair.first(), pair.other().reverse()));
+            }
+            return new DenseNodeExpander(reversed, maxExpandPerNode);
+        }
+
+        // merges directions per type, and drops or narrows typed groups already covered by an all-types group
+        private static List<Pair<RelationshipType, Direction>> normalize(Iterable<Pair<RelationshipType, Direction>> relDirs) {
+            Map<String, Pair<RelationshipType, Direction>> byType = new LinkedHashMap<>();
+            for (Pair<RelationshipType, Direction> pair : relDirs) {
+                String name = pair.first() == null ? null : pair.first().name();
+                Pair<RelationshipType, Direction> existing = byType.get(name);
+                if (existing == null) {
+                    byType.put(name, pair);
+                } else if (existing.other() != pair.other()) {
+                    byType.put(name, Pair.of(pair.first(), Direction.BOTH));
+                }
+            }
+
+            Pair<RelationshipType, Direction> allTypes = byType.get(null);
+            List<Pair<RelationshipType, Direction>> normalized = new ArrayList<>(byType.size());
+            for (Pair<RelationshipType, Direction> pair : byType.values()) {
+                if (allTypes == null || pair == allTypes) {
+                    normalized.add(pair);
+                } else if (allTypes.other() != Direction.BOTH && pair.other() != allTypes.other()) {
+                    normalized.add(Pair.of(pair.first(), allTypes.other().reverse()));
+                }
+            }
+            return normalized;
+        }
+
+        private static Iterable<Relationship> filter(Iterable<Relationship> rels, long nodeId, boolean skipLoops, long excludedId) {
+            return () -> new Iterator<Relationship>() {
+                private final Iterator<Relationship> iterator = rels.iterator();
+                private Relationship next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && iterator.hasNext()) {
+                        Relationship rel = iterator.next();
+                        if (rel.getId() != excludedId && !(skipLoops && rel.getOtherNodeId(nodeId) == nodeId)) {
+                            next = rel;
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Relationship next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Relationship rel = next;
+                    next = null;
+                    return rel;
+                }
+            };
+        }
+
+        private static Iterable<Relationship> concat(List<Iterable<Relationship>> groups) {
+            if (groups.size() == 1) {
+                return groups.get(0);
+            }
+
+            return () -> new Iterator<Relationship>() {
+                private final Iterator<Iterable<Relationship>> groupIterator = groups.iterator();
+                private Iterator<Relationship> current = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && groupIterator.hasNext()) {
+                        current = groupIterator.next().iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public Relationship next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+            };
+        }
+    }
+
     public static class DenseNodeEvaluator implements Evaluator {
         private String denseRelPattern;
         private long degree;
@@ -294,6 +534,13 @@ public class DenseNodeFinder {
             return result;
         }
 
+        /**
+         * @return true if expansion may continue through the node, ignoring depth and limit
+         */
+        public boolean allows(Node node) {
+            return !labelExists(node, blacklistLabels) && whitelistAllowed(node);
+        }
+
         private boolean labelExists(Node node, Set<String> labels) {
             if (labels.isEmpty()) {
                 return false;
@@ -0,0 +1,192 @@
+package neo4j.path.util;
+
+import neo4j.result.ProfileResult;
+import neo4j.util.HyperLogLog;
+import neo4j.util.NodeSample;
+import neo4j.util.RelTypeAndDirection;
+import neo4j.util.Util;
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+
+import java.util.*;
+
+/**
+ * Bounded, sampled breadth-first expansion that estimates how large a dense node expansion will be, without running it.
+ *
+ * Each depth keeps only a HyperLogLog sketch of the nodes reached and a fixed-size sample of them to expand further,
+ * so memory does not grow with the size of the graph. Sampled nodes read at most samplePerNode relationships,
+ * split across the relationshipFilter groups in proportion to their degrees, and are credited with as many relationships
+ * as the traversal's DenseNodeExpander would follow, including its maxExpandPerNode cap.
+ * Path uniqueness is only approximated, by never expanding a sampled node back along the relationship it was reached by,
+ * so frontier estimates count distinct nodes reached at each depth rather than the number of paths the real traversal would produce.
+ */
+public class ExpansionProfiler {
+    public static final int DEFAULT_MAX_LEVEL = 10;
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+    public static final int DEFAULT_SAMPLE_PER_NODE = 100;
+    // below this share of reads landing on already seen nodes, there is too little convergence for Chao1 to go on
+    static final double MIN_REPEAT_FRACTION = 0.05;
+
+    private final GraphDatabaseService db;
+    private final DenseNodeFinder.DenseNodeExpander expander;
+    private final DenseNodeFinder.DenseNodeExpander sampler;
+    private final DenseNodeFinder.LabelEvaluator labelEvaluator;
+    private final boolean filterStartNode;
+    private final String denseRelPattern;
+    private final long degree;
+    private final long continueBelow;
+    private final int sampleSize;
+
+    public ExpansionProfiler(GraphDatabaseService db, String pathFilter, String labelFilter, boolean filterStartNode, String denseRelPattern, long degree, long continueBelow, long maxExpandPerNode, long sampleSize, long samplePerNode) {
+        // both bound the cost of the profile, so neither can be unlimited
+        checkPositiveInt("sampleSize", sampleSize);
+        checkPositiveInt("samplePerNode", samplePerNode);
+
+        this.db = db;
+        // the expander of the real traversal, and one reading at most samplePerNode of the same relationships
+        this.expander = new DenseNodeFinder.DenseNodeExpander(RelTypeAndDirection.parse(pathFilter), maxExpandPerNode);
+        this.sampler = new DenseNodeFinder.DenseNodeExpander(RelTypeAndDirection.parse(pathFilter), maxExpandPerNode < 1 ? samplePerNode : Math.min(samplePerNode, maxExpandPerNode));
+        this.labelEvaluator = labelFilter != null && !labelFilter.trim().isEmpty() ? new DenseNodeFinder.LabelEvaluator(labelFilter, filterStartNode, -1, -1) : null;
+        this.filterStartNode = filterStartNode;
+        this.denseRelPattern = denseRelPattern;
+        this.degree = degree;
+        this.continueBelow = continueBelow;
+        this.sampleSize = (int) sampleSize;
+    }
+
+    private static void checkPositiveInt(String name, long value) {
+        if (value < 1 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(name + " must be between 1 and " + Integer.MAX_VALUE + ", was " + value);
+        }
+    }
+
+    public List<ProfileResult> profile(List<Node> startNodes, long maxLevel) throws EntityNotFoundException {
+        if (maxLevel == -1) maxLevel = DEFAULT_MAX_LEVEL;
+
+        List<ProfileResult> results = new ArrayList<>();
+        HyperLogLog sketch = new HyperLogLog();
+        NodeSample sample = new NodeSample(sampleSize);
+
+        for (Node node : startNodes) {
+            sketch.add(node.getId());
+            sample.offer(node.getId());
+        }
+
+        long estimatedFrontier = Math.round(distinctSeen(sketch, sample));
+
+        for (int depth = 0; depth <= maxLevel && !sample.isEmpty(); depth++) {
+            double nodeScale = (double) estimatedFrontier / sample.size();
+            boolean expand = depth < maxLevel;
+
+            HyperLogLog nextSketch = new HyperLogLog();
+            NodeSample nextSample = new NodeSample(sampleSize);
+            long[] histogram = new long[Long.SIZE + 1];
+            long denseCount = 0;
+            long expandableRels = 0;
+            long readRels = 0;
+
+            for (long id : sample.ids()) {
+                Node node = db.getNodeById(id);
+                // the traversal's uniqueness never expands back along the relationship a node was reached by
+                long arrivedBy = sample.relationshipId(id);
+                Relationship arriving = arrivedBy == -1 ? null : db.getRelationshipById(arrivedBy);
+
+                if (depth > 0 || filterStartNode) {
+                    if (labelEvaluator != null && !labelEvaluator.allows(node)) {
+                        continue;
+                    }
+
+                    long denseDegree = Util.degree(node, denseRelPattern);
+                    histogram[bucket(denseDegree)]++;
+
+                    if (denseDegree >= degree) {
+                        denseCount++;
+                        if (denseDegree >= continueBelow) {
+                            continue;
+                        }
+                    }
+                }
+
+                if (expand) {
+                    expandableRels += expander.degree(node, arriving);
+                    for (Relationship rel : sampler.expand(node, arriving)) {
+                        long otherId = rel.getOtherNodeId(node.getId());
+                        nextSketch.add(otherId);
+                        nextSample.offer(otherId, rel.getId());
+                        readRels++;
+                    }
+                }
+            }
+
+            results.add(new ProfileResult(depth, sample.size(), estimatedFrontier, Math.round(denseCount * nodeScale), histogram(histogram)));
+
+            if (readRels == 0) {
+                break;
+            }
+
+            // the full traversal follows every expandable relationship of every frontier node, not just the sampled ones
+            estimatedFrontier = estimateDistinct(nextSketch, nextSample, readRels, expandableRels * nodeScale);
+            sketch = nextSketch;
+            sample = nextSample;
+        }
+
+        return results;
+    }
+
+    // distinct ids offered so far, exact while the sample still holds all of them
+    private static double distinctSeen(HyperLogLog sketch, NodeSample sample) {
+        return sample.isTruncated() ? Math.max(sample.size(), sketch.estimate()) : sample.size();
+    }
+
+    /**
+     * Extrapolates the distinct nodes seen in the observed relationship reads to the given total number of reads.
+     * Reads that rarely land on an already seen node extrapolate linearly. Otherwise the Chao1 estimate of unseen nodes
+     * and its extrapolation curve (Shen, Chao and Lin 2003) correct for reads converging on the same nodes,
+     * bounded by what was seen and by the linear extrapolation, so it never caps a diverging expansion.
+     */
+    static long estimateDistinct(HyperLogLog sketch, NodeSample sample, long observed, double total) {
+        double seen = distinctSeen(sketch, sample);
+        if (total <= observed || sample.isEmpty()) {
+            return Math.round(seen);
+        }
+
+        double linear = seen * total / observed;
+        if (1 - seen / observed < MIN_REPEAT_FRACTION) {
+            return Math.round(linear);
+        }
+
+        // frequency counts are exact within the sample, scaled up to all distinct nodes seen
+        double n = observed;
+        double f1 = sample.frequencyCount(1) * seen / sample.size();
+        double f2 = sample.frequencyCount(2) * seen / sample.size();
+        double unseen = f2 > 0 ? (n - 1) / n * f1 * f1 / (2 * f2) : (n - 1) / n * f1 * (f1 - 1) / 2;
+        if (f1 == 0 || unseen <= 0) {
+            return Math.round(seen);
+        }
+
+        double extrapolated = seen + unseen * (1 - Math.pow(1 - f1 / (n * unseen + f1), total - n));
+        return Math.round(Math.min(extrapolated, linear));
+    }
+
+    // power of two buckets: 0, 1, 2-3, 4-7, ...
+    private static int bucket(long degree) {
+        return degree <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(degree);
+    }
+
+    private static Map<String, Object> histogram(long[] counts) {
+        Map<String, Object> histogram = new LinkedHashMap<>();
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] == 0) continue;
+
+            String range;
+            if (bucket <= 1) {
+                range = String.valueOf(bucket);
+            } else {
+                long low = 1L << (bucket - 1);
+                range = low + "-" + (2 * low - 1);
+            }
+            histogram.put(range, counts[bucket]);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,22 @@
+package neo4j.result;
+
+import java.util.Map;
+
+/**
+ * Estimates for a single depth of a sampled expansion profile.
+ */
+public class ProfileResult {
+    public final long depth;
+    public final long sampledNodes;
+    public final long estimatedFrontier;
+    public final long estimatedDenseNodes;
+    public final Map<String, Object> degreeHistogram;
+
+    public ProfileResult(long depth, long sampledNodes, long estimatedFrontier, long estimatedDenseNodes, Map<String, Object> degreeHistogram) {
+        this.depth = depth;
+        this.sampledNodes = sampledNodes;
+        this.estimatedFrontier = estimatedFrontier;
+        this.estimatedDenseNodes = estimatedDenseNodes;
+        this.degreeHistogram = degreeHistogram;
+    }
+}
@@ -0,0 +1,74 @@
+package neo4j.util;
+
+/**
+ * Fixed-size HyperLogLog sketch for estimating the number of distinct node ids seen.
+ * Memory use is 2^precision bytes regardless of how many ids are added.
+ */
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 14;
+
+    private final int precision;
+    private final int registerCount;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16, was " + precision);
+        }
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+        this.registers = new byte[registerCount];
+    }
+
+    public void add(long id) {
+        long hash = hash(id);
+        int index = (int) (hash >>> (64 - precision));
+        // leading zeros of the remaining bits, plus one; the sentinel bit bounds the rank
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) zeros++;
+        }
+
+        double estimate = alpha() * registerCount * registerCount / sum;
+
+        // small range correction, linear counting is more accurate while registers are still empty
+        if (estimate <= 2.5 * registerCount && zeros > 0) {
+            estimate = registerCount * Math.log((double) registerCount / zeros);
+        }
+
+        return Math.round(estimate);
+    }
+
+    private double alpha() {
+        switch (registerCount) {
+            case 16: return 0.673;
+            case 32: return 0.697;
+            case 64: return 0.709;
+            default: return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+
+    // murmur3 64-bit finalizer, a bijection that spreads sequential node ids across the registers
+    public static long hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
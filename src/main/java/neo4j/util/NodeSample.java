@@ -0,0 +1,97 @@
+package neo4j.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Bounded, deterministic sample of distinct node ids (bottom-k by hash).
+ * The retained ids are a uniform sample of all distinct ids offered, and since a retained id was never evicted,
+ * the number of times each one was offered is exact.
+ * Each retained id also keeps the relationship id it was first offered with, e.g. the relationship it was reached by.
+ */
+public class NodeSample {
+    private final int capacity;
+    private final TreeMap<Long, Entry> entriesByHash = new TreeMap<>();
+    private boolean truncated;
+
+    public NodeSample(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Sample capacity must be positive, was " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void offer(long id) {
+        offer(id, -1);
+    }
+
+    public void offer(long id, long relationshipId) {
+        long hash = HyperLogLog.hash(id);
+        Entry entry = entriesByHash.get(hash);
+        if (entry != null) {
+            entry.count++;
+        } else if (entriesByHash.size() < capacity) {
+            entriesByHash.put(hash, new Entry(id, relationshipId));
+        } else {
+            truncated = true;
+            if (hash < entriesByHash.lastKey()) {
+                entriesByHash.put(hash, new Entry(id, relationshipId));
+                entriesByHash.pollLastEntry();
+            }
+        }
+    }
+
+    public int size() {
+        return entriesByHash.size();
+    }
+
+    public boolean isEmpty() {
+        return entriesByHash.isEmpty();
+    }
+
+    /**
+     * @return true if distinct ids were offered beyond the capacity, so the sample no longer holds every id
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the number of retained ids that were offered exactly the given number of times
+     */
+    public long frequencyCount(long times) {
+        long count = 0;
+        for (Entry entry : entriesByHash.values()) {
+            if (entry.count == times) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the relationship id the retained id was first offered with, or -1 if there was none
+     */
+    public long relationshipId(long id) {
+        Entry entry = entriesByHash.get(HyperLogLog.hash(id));
+        return entry == null ? -1 : entry.relationshipId;
+    }
+
+    public List<Long> ids() {
+        List<Long> ids = new ArrayList<>(entriesByHash.size());
+        for (Entry entry : entriesByHash.values()) {
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final long relationshipId;
+        private long count = 1;
+
+        private Entry(long id, long relationshipId) {
+            this.id = id;
+            this.relationshipId = relationshipId;
+        }
+    }
+}
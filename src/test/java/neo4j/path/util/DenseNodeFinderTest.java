@@ -4,11 +4,16 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import org.junit.Rule;
 import org.junit.Test;
 import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.exceptions.ClientException;
 import org.neo4j.harness.junit.Neo4jRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Created by andrewbowman on 1/8/18.
@@ -241,4 +246,325 @@ public class DenseNodeFinderTest {
             assertThat( record.get("name").asString(), equalTo( "dense2" ) );
         }
     }
+
+    @Test
+    public void shouldProfileExpansionPerDepth() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (:Start)-[:REL]->(:Node{name:'middle'})-[:REL]->(d:Dense{name:'dense'}) " +
+                    "WITH d " +
+                    "UNWIND range(1,1000) as index " +
+                    "CREATE (d)-[:REL]->(:Node{name:'index ' + index}) " +
+                    "WITH distinct d " +
+                    "CREATE (d)<-[:REL]-(:Node{name:'other'})");
+
+
+
+            // When
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {degree:100, maxLevel:3}) yield depth, estimatedFrontier, estimatedDenseNodes, degreeHistogram return depth, estimatedFrontier, estimatedDenseNodes, degreeHistogram ORDER BY depth").list();
+
+            // Then the dense node is the whole frontier at depth 2, and expansion does not continue past it
+            assertThat(results.size(), equalTo(3));
+            assertThat( results.get(1).get("estimatedFrontier").asLong(), equalTo( 1l) );
+            assertThat( results.get(1).get("estimatedDenseNodes").asLong(), equalTo( 0l) );
+            Record record = results.get(2);
+            assertThat( record.get("estimatedFrontier").asLong(), equalTo( 1l) );
+            assertThat( record.get("estimatedDenseNodes").asLong(), equalTo( 1l) );
+            assertThat( record.get("degreeHistogram").get("512-1023").asLong(), equalTo( 1l) );
+        }
+    }
+
+    @Test
+    public void shouldEstimateFrontierFromSampledExpansion() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (:Start)-[:REL]->(hub:Hub{name:'hub'}) " +
+                    "WITH hub " +
+                    "UNWIND range(1,1000) as index " +
+                    "CREATE (hub)-[:REL]->(:Node{name:'leaf ' + index})");
+
+
+
+            // When only 100 of the hub's relationships are read
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {degree:100, continueBelow:10000, samplePerNode:100, maxLevel:3}) yield depth, sampledNodes, estimatedFrontier, estimatedDenseNodes return depth, sampledNodes, estimatedFrontier, estimatedDenseNodes ORDER BY depth").list();
+
+            // Then the hub's 1000 leaves are extrapolated from the sample, and the leaves have nowhere left to go
+            assertThat(results.size(), equalTo(3));
+            assertThat( results.get(1).get("estimatedDenseNodes").asLong(), equalTo( 1l) );
+            Record record = results.get(2);
+            assertThat( record.get("sampledNodes").asLong(), equalTo( 100l) );
+            assertEquals( 1000, record.get("estimatedFrontier").asLong(), 1000 * 0.05 );
+        }
+    }
+
+    @Test
+    public void shouldEstimateFrontierOfHubFarAboveSampleLimit() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (hub:Start{name:'hub'}) " +
+                    "WITH hub " +
+                    "UNWIND range(1,5000) as index " +
+                    "CREATE (hub)-[:REL]->(:Node{name:'leaf ' + index})");
+
+
+
+            // When only 100 of the hub's 5000 relationships are read
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {samplePerNode:100, maxLevel:1}) yield depth, sampledNodes, estimatedFrontier return depth, sampledNodes, estimatedFrontier ORDER BY depth").list();
+
+            // Then the leaves are extrapolated from the sample without being capped by it
+            assertThat(results.size(), equalTo(2));
+            Record record = results.get(1);
+            assertThat( record.get("sampledNodes").asLong(), equalTo( 100l) );
+            assertEquals( 5000, record.get("estimatedFrontier").asLong(), 5000 * 0.05 );
+        }
+    }
+
+    @Test
+    public void shouldCountConvergingPathsOnce() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (s:Start), (hub:Hub{name:'hub'}) " +
+                    "WITH s, hub " +
+                    "UNWIND range(1,200) as index " +
+                    "CREATE (s)-[:REL]->(:Node{name:'middle ' + index})-[:REL]->(hub)");
+
+
+
+            // When
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {degree:100, maxLevel:3}) yield depth, estimatedFrontier, estimatedDenseNodes return depth, estimatedFrontier, estimatedDenseNodes ORDER BY depth").list();
+
+            // Then the 200 paths converging on the hub count it once, and expansion stops there
+            assertThat(results.size(), equalTo(3));
+            assertThat( results.get(1).get("estimatedFrontier").asLong(), equalTo( 200l) );
+            Record record = results.get(2);
+            assertThat( record.get("estimatedFrontier").asLong(), equalTo( 1l) );
+            assertThat( record.get("estimatedDenseNodes").asLong(), equalTo( 1l) );
+        }
+    }
+
+    @Test
+    public void shouldRejectUnboundedProfileSampling() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (:Start)-[:REL]->(:Node)");
+
+            // When
+            try {
+                session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {samplePerNode:0}) yield depth return depth").list();
+                fail("samplePerNode:0 should be rejected");
+            } catch (ClientException e) {
+                // Then
+                assertThat( e.getMessage().contains("samplePerNode must be between 1 and"), equalTo( true ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldLimitExpansionPerNode() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (:Start)-[:REL]->(hub:Hub{name:'hub'}) " +
+                    "WITH hub " +
+                    "UNWIND range(1,1000) as index " +
+                    "CREATE (hub)-[:OTHER]->(:Node{name:'other ' + index}) " +
+                    "WITH distinct hub " +
+                    "UNWIND range(1,100) as index " +
+                    "CREATE (hub)-[:REL]->(leaf:Leaf{name:'leaf ' + index}) " +
+                    "CREATE (leaf)-[:REL]->(:End) " +
+                    "CREATE (leaf)-[:REL]->(:End)");
+
+
+
+            // When
+            List<Record> all = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.nodes(s, {relationshipFilter:'REL>', denseRels:'REL>', degree:2, continueBelow:1000}) yield node return node").list();
+            List<Record> limited = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.nodes(s, {relationshipFilter:'REL>', denseRels:'REL>', degree:2, continueBelow:1000, maxExpandPerNode:10}) yield node return node").list();
+
+            // Then expansion through the hub follows every leaf, unless capped per node
+            assertThat(all.size(), equalTo(101));
+            assertThat(limited.size(), equalTo(11));
+        }
+    }
+
+    @Test
+    public void shouldMergeBothDirectionsOfSameType() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (s:Start{name:'start'})-[:KNOWS]->(:Node{name:'a'}), " +
+                    "(s)<-[:KNOWS]-(:Node{name:'b'}), " +
+                    "(s)-[:OTHER]->(:Node{name:'c'}), " +
+                    "(s)<-[:OTHER]-(:Node{name:'d'}), " +
+                    "(s)-[:KNOWS]->(s)");
+
+
+
+            // When both directions of KNOWS are given separately
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.paths(s, {relationshipFilter:'KNOWS>|KNOWS<', degree:0, maxLevel:1}) yield path return last(nodes(path)).name as name ORDER BY name").list();
+
+            // Then expand each KNOWS relationship once, the self-loop included
+            assertThat(names(results), equalTo(Arrays.asList("a", "b", "start")));
+        }
+    }
+
+    @Test
+    public void shouldNarrowTypedGroupBesideAllTypesGroup() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (s:Start{name:'start'})-[:KNOWS]->(:Node{name:'a'}), " +
+                    "(s)<-[:KNOWS]-(:Node{name:'b'}), " +
+                    "(s)-[:OTHER]->(:Node{name:'c'}), " +
+                    "(s)<-[:OTHER]-(:Node{name:'d'}), " +
+                    "(s)-[:KNOWS]->(s)");
+
+
+
+            // When all outgoing relationships plus KNOWS in both directions
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.paths(s, {relationshipFilter:'>|KNOWS', degree:0, maxLevel:1}) yield path return last(nodes(path)).name as name ORDER BY name").list();
+
+            // Then KNOWS only adds the incoming direction, without expanding the self-loop twice
+            assertThat(names(results), equalTo(Arrays.asList("a", "b", "c", "start")));
+        }
+    }
+
+    @Test
+    public void shouldDropTypedGroupCoveredByAllTypesGroup() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (s:Start{name:'start'})-[:KNOWS]->(:Node{name:'a'}), " +
+                    "(s)<-[:KNOWS]-(:Node{name:'b'}), " +
+                    "(s)-[:OTHER]->(:Node{name:'c'}), " +
+                    "(s)<-[:OTHER]-(:Node{name:'d'}), " +
+                    "(s)-[:KNOWS]->(s)");
+
+
+
+            // When all relationships plus outgoing KNOWS
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.paths(s, {relationshipFilter:'|KNOWS>', degree:0, maxLevel:1}) yield path return last(nodes(path)).name as name ORDER BY name").list();
+
+            // Then every relationship is expanded once
+            assertThat(names(results), equalTo(Arrays.asList("a", "b", "c", "d", "start")));
+        }
+    }
+
+    @Test
+    public void shouldSplitExpansionLimitAcrossGroupsByDegree() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (hub:Hub) " +
+                    "WITH hub " +
+                    "UNWIND range(1,30) as index " +
+                    "CREATE (hub)-[:REL]->(:Node) " +
+                    "WITH distinct hub " +
+                    "UNWIND range(1,10) as index " +
+                    "CREATE (hub)-[:OTHER]->(:Node)");
+
+
+
+            // When
+            List<Record> results = session.run( "MATCH (h:Hub) CALL expandTo.denseNodes.paths(h, {relationshipFilter:'REL>|OTHER>', degree:0, maxLevel:1, maxExpandPerNode:8}) yield path return type(last(relationships(path))) as type, count(*) as count ORDER BY type").list();
+
+            // Then the 8 expanded relationships are split 3:1, as the degrees are
+            assertThat(results.size(), equalTo(2));
+            assertThat( results.get(0).get("type").asString(), equalTo( "OTHER" ) );
+            assertThat( results.get(0).get("count").asLong(), equalTo( 2l) );
+            assertThat( results.get(1).get("type").asString(), equalTo( "REL" ) );
+            assertThat( results.get(1).get("count").asLong(), equalTo( 6l) );
+        }
+    }
+
+    @Test
+    public void shouldNotCountArrivingRelationshipTowardExpansionLimit() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given the relationship from the start is the hub's newest, so first in its chain
+            Session session = driver.session();
+            session.run("CREATE (hub:Hub{name:'hub'}) " +
+                    "WITH hub " +
+                    "UNWIND range(1,20) as index " +
+                    "CREATE (hub)-[:REL]->(:Leaf)-[:REL]->(:End) " +
+                    "WITH distinct hub " +
+                    "CREATE (:Start)-[:REL]->(hub)");
+
+
+
+            // When expanding in both directions
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.paths(s, {relationshipFilter:'REL', denseRels:'REL>', degree:1, continueBelow:1000, maxLevel:2, maxExpandPerNode:5}) yield path with last(nodes(path)) as node where node:Leaf return count(*) as count").list();
+
+            // Then all 5 expansions from the hub reach leaves
+            assertThat( results.get(0).get("count").asLong(), equalTo( 5l) );
+        }
+    }
+
+    @Test
+    public void shouldProfileWithExpansionLimit() throws Throwable
+    {
+        try( Driver driver = GraphDatabase
+                .driver( neo4j.boltURI() , Config.build().withoutEncryption().toConfig() ) )
+        {
+            // Given
+            Session session = driver.session();
+            session.run("CREATE (:Start)-[:REL]->(hub:Hub{name:'hub'}) " +
+                    "WITH hub " +
+                    "UNWIND range(1,1000) as index " +
+                    "CREATE (hub)-[:REL]->(:Node{name:'leaf ' + index})");
+
+
+
+            // When
+            List<Record> results = session.run( "MATCH (s:Start) CALL expandTo.denseNodes.profile(s, {degree:100, continueBelow:10000, maxExpandPerNode:10, maxLevel:2}) yield depth, estimatedFrontier return depth, estimatedFrontier ORDER BY depth").list();
+
+            // Then only the 10 relationships the capped traversal follows from the hub are counted
+            assertThat(results.size(), equalTo(3));
+            assertThat( results.get(2).get("estimatedFrontier").asLong(), equalTo( 10l) );
+        }
+    }
+
+    private static List<String> names(List<Record> results) {
+        List<String> names = new ArrayList<>();
+        for (Record record : results) {
+            names.add(record.get("name").asString());
+        }
+        return names;
+    }
 }
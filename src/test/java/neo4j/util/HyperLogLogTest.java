@@ -0,0 +1,39 @@
+package neo4j.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void shouldEstimateTenThousandDistinctIds() {
+        assertEstimateWithin(10_000, 0.03);
+    }
+
+    @Test
+    public void shouldEstimateHundredThousandDistinctIds() {
+        assertEstimateWithin(100_000, 0.03);
+    }
+
+    @Test
+    public void shouldIgnoreRepeatedIds() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int repeat = 0; repeat < 10; repeat++) {
+            for (long id = 0; id < 1000; id++) {
+                sketch.add(id);
+            }
+        }
+
+        assertEquals(1000, sketch.estimate(), 1000 * 0.03);
+    }
+
+    private void assertEstimateWithin(long distinct, double relativeError) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (long id = 0; id < distinct; id++) {
+            sketch.add(id);
+        }
+
+        assertEquals(distinct, sketch.estimate(), distinct * relativeError);
+    }
+}
@@ -0,0 +1,57 @@
+package neo4j.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class NodeSampleTest {
+
+    @Test
+    public void shouldStayWithinCapacity() {
+        NodeSample sample = new NodeSample(100);
+        for (long id = 0; id < 10_000; id++) {
+            sample.offer(id);
+        }
+
+        assertThat(sample.size(), equalTo(100));
+        assertThat(sample.ids().size(), equalTo(100));
+        assertThat(sample.isTruncated(), equalTo(true));
+    }
+
+    @Test
+    public void shouldNotChangeWhenOfferedSameIdTwice() {
+        NodeSample sample = new NodeSample(100);
+        sample.offer(42);
+        sample.offer(42);
+
+        assertThat(sample.size(), equalTo(1));
+        assertThat(sample.isTruncated(), equalTo(false));
+        assertThat(sample.frequencyCount(1), equalTo(0L));
+        assertThat(sample.frequencyCount(2), equalTo(1L));
+    }
+
+    @Test
+    public void shouldKeepSameIdsRegardlessOfOfferOrder() {
+        NodeSample forward = new NodeSample(10);
+        NodeSample backward = new NodeSample(10);
+        for (long id = 0; id < 1000; id++) {
+            forward.offer(id);
+            backward.offer(999 - id);
+        }
+
+        assertThat(forward.ids(), equalTo(backward.ids()));
+    }
+
+    @Test
+    public void shouldCountOffersOfRetainedIdsExactly() {
+        NodeSample sample = new NodeSample(10);
+        for (int repeat = 0; repeat < 3; repeat++) {
+            for (long id = 0; id < 1000; id++) {
+                sample.offer(id);
+            }
+        }
+
+        assertThat(sample.frequencyCount(3), equalTo(10L));
+    }
+}